@@ -25,10 +25,11 @@
  */
 package net.apkc.sf.mvc;
 
-import org.apache.log4j.Logger;
+import net.apkc.sf.utils.AsyncLogger;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -42,9 +43,10 @@ import java.util.List;
  */
 public abstract class AbstractController implements PropertyChangeListener {
 
-    private static final Logger LOG = Logger.getLogger(AbstractController.class);
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(AbstractController.class);
     private List<AbstractViewPanel> registeredViews;
     private List<AbstractModel> registeredModels;
+    private volatile ModelJournal journal;
 
     public AbstractController() {
         registeredViews = new ArrayList<>();
@@ -89,8 +91,51 @@ public abstract class AbstractController implements PropertyChangeListener {
         registeredViews.remove(view);
     }
 
+    /**
+     * Sets the journal where all property changes received by this controller
+     * will be recorded.
+     *
+     * @param journal The journal, or NULL to stop recording.
+     */
+    public void setJournal(ModelJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the journal attached to this controller.
+     *
+     * @return The journal, or NULL if not recording.
+     */
+    ModelJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Returns the models registered in this controller.
+     *
+     * @return The list of models.
+     */
+    List<AbstractModel> getRegisteredModels() {
+        return registeredModels;
+    }
+
     @Override
     public void propertyChange(PropertyChangeEvent evt) {
+        ModelJournal j = journal;
+        if (j != null) {
+            try {
+                j.record(evt, registeredModels.indexOf(evt.getSource()));
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Can't record property change, disabling journal.", e);
+                journal = null;
+                try {
+                    j.close();
+                } catch (IOException | RuntimeException ex) {
+                    LOG.warn("Can't close journal.", ex);
+                }
+            }
+        }
+
         for (AbstractViewPanel view : registeredViews) {
             view.modelPropertyChange(evt);
         }
@@ -116,7 +161,7 @@ public abstract class AbstractController implements PropertyChangeListener {
                                 });
                 method.invoke(model, newValue);
             } catch (NoSuchMethodException | SecurityException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                LOG.warn("Property not found in model: " + model.getClass().getName(), e);
+                LOG.warn("Property not found in model: {}", model.getClass().getName(), e);
             }
         }
     }
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.sf.mvc;
+
+import net.apkc.sf.tasks.TasksHandler;
+import net.apkc.sf.utils.AsyncLogger;
+
+import java.beans.PropertyChangeEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only binary journal of model property changes.
+ *
+ * <p>
+ * When attached to a controller through
+ * {@link AbstractController#setJournal(ModelJournal)} every property change
+ * received by the controller is appended to the journal file. The file can
+ * later be fed to a {@link ModelJournalReplayer}.
+ * </p>
+ *
+ * <p>
+ * Records are encoded on the thread that fired the change, usually the Event
+ * Dispatch Thread, since values may change right after the event. This
+ * includes Java serialization of {@link Serializable} values, so models
+ * should avoid firing large object graphs while recording. Encoded records
+ * are collected in a bounded buffer, which is handed to a keyed task of the
+ * {@link TasksHandler} and written to disk through a {@link FileChannel} when
+ * it fills up, when a record is appended more than {@link #FLUSH_INTERVAL_MS}
+ * milliseconds after the last hand-off, or when the journal is flushed or
+ * closed. Recording continues into a second buffer meanwhile, and the firing
+ * thread only waits if that one fills up too before the first is written. If
+ * the application dies, the records not yet handed off are lost, so call
+ * {@link #flush()} before any point that must be captured.
+ * </p>
+ *
+ * <p>
+ * Each record holds the time elapsed since the journal was opened, the
+ * position of the model in the controller, the class name of the model, the
+ * property name, and the old and new values. Values of
+ * primitive wrapper types and strings are stored natively, other
+ * {@link Serializable} values are stored with Java serialization and anything
+ * else, including values that fail to serialize, is stored as its string
+ * representation.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public class ModelJournal implements Closeable {
+
+    /** Magic number at the start of every journal file. */
+    static final int MAGIC = 0x534A4E4C;
+    /** Version of the journal format. */
+    static final int VERSION = 2;
+    /** Size of the file header: magic, version and start time. */
+    static final int HEADER_SIZE = 4 + 4 + 8;
+    /** Value type tags. */
+    static final byte T_NULL = 0;
+    static final byte T_STRING = 1;
+    static final byte T_INTEGER = 2;
+    static final byte T_LONG = 3;
+    static final byte T_DOUBLE = 4;
+    static final byte T_FLOAT = 5;
+    static final byte T_BOOLEAN = 6;
+    static final byte T_SHORT = 7;
+    static final byte T_BYTE = 8;
+    static final byte T_CHARACTER = 9;
+    static final byte T_SERIALIZED = 10;
+    /** Charset used for all strings. */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    /** Default size of the write buffer. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /** Max time in milliseconds records are kept in the buffer while new ones are appended. */
+    public static final long FLUSH_INTERVAL_MS = 1000;
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(ModelJournal.class);
+    private final FileChannel channel;
+    /** Buffer being written to disk is returned here when done. */
+    private final BlockingQueue<ByteBuffer> spares = new ArrayBlockingQueue<>(1);
+    /** Buffer where records are appended. */
+    private ByteBuffer buffer;
+    /** Last write handed to the pool. */
+    private Future<Boolean> lastWrite;
+    /** First error of the background writes, if any. */
+    private volatile IOException failure;
+    private final long startNanos;
+    private long lastFlushNanos;
+    private long records;
+    private boolean closed;
+
+    /**
+     * Opens a journal with the default buffer size. If the file already
+     * exists it will be truncated.
+     *
+     * @param file The journal file.
+     * @throws IOException If the file can't be opened.
+     */
+    public ModelJournal(Path file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Opens a journal. If the file already exists it will be truncated.
+     *
+     * @param file       The journal file.
+     * @param bufferSize The size in bytes of the write buffer.
+     * @throws IOException If the file can't be opened.
+     */
+    public ModelJournal(Path file, int bufferSize) throws IOException {
+        if (bufferSize < HEADER_SIZE) {
+            throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+        }
+
+        channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        spares.add(ByteBuffer.allocateDirect(bufferSize));
+        startNanos = System.nanoTime();
+        lastFlushNanos = startNanos;
+
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+        LOG.info("Opening model journal at {} with a buffer of {} bytes.", file, bufferSize);
+    }
+
+    /**
+     * Appends a property change to the journal.
+     *
+     * @param evt        The change event.
+     * @param modelIndex The position of the model that fired the change in
+     *                   the controller's list of models, or -1 if unknown.
+     * @throws IOException If a previous write to disk failed.
+     */
+    public synchronized void record(PropertyChangeEvent evt, int modelIndex) throws IOException {
+        if (closed) {
+            return;
+        }
+        checkFailure();
+
+        byte[] model = evt.getSource().getClass().getName().getBytes(UTF8);
+        byte[] property = evt.getPropertyName() == null ? new byte[0] : evt.getPropertyName().getBytes(UTF8);
+        byte[] oldValue = encodeValue(evt.getOldValue());
+        byte[] newValue = encodeValue(evt.getNewValue());
+        int size = 8 + 4 + 4 + model.length + 4 + property.length + oldValue.length + newValue.length;
+
+        if (size > buffer.remaining()) {
+            handOff();
+        }
+        // Oversized records are written on their own.
+        ByteBuffer target = size > buffer.remaining() ? ByteBuffer.allocate(size) : buffer;
+
+        long now = System.nanoTime();
+        target.putLong(now - startNanos);
+        target.putInt(modelIndex);
+        target.putInt(model.length).put(model);
+        target.putInt(property.length).put(property);
+        target.put(oldValue);
+        target.put(newValue);
+        records++;
+
+        if (target != buffer) {
+            target.flip();
+            write(target, false);
+        } else if (now - lastFlushNanos >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS)) {
+            handOff();
+        }
+    }
+
+    /**
+     * Writes all buffered records to disk and waits until they are written.
+     *
+     * @throws IOException If the buffer can't be written.
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            handOff();
+            awaitWrites();
+            checkFailure();
+        }
+    }
+
+    /**
+     * Returns the number of records appended so far.
+     *
+     * @return The number of records.
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            handOff();
+            awaitWrites();
+            checkFailure();
+            channel.force(false);
+        } finally {
+            closed = true;
+            channel.close();
+            LOG.info("Closing model journal after {} records.", records);
+        }
+    }
+
+    /**
+     * Hands the current buffer to the writer and continues with the spare one.
+     */
+    private void handOff() throws IOException {
+        lastFlushNanos = System.nanoTime();
+        if (buffer.position() == 0) {
+            return;
+        }
+
+        ByteBuffer next;
+        try {
+            next = spares.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the journal writer.");
+        }
+        ByteBuffer full = buffer;
+        buffer = next;
+        full.flip();
+        write(full, true);
+    }
+
+    /**
+     * Writes a buffer to disk in the pool. Writes of the same journal run in order.
+     *
+     * @param data    The buffer, ready to be read.
+     * @param recycle TRUE if the buffer must be returned to the spares when written.
+     */
+    private void write(final ByteBuffer data, final boolean recycle) {
+        lastWrite = TasksHandler.getInstance().submitKeyedTask(this, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (failure == null && data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    if (recycle) {
+                        data.clear();
+                        spares.offer(data);
+                    }
+                }
+            }
+        });
+    }
+
+    private void awaitWrites() throws IOException {
+        if (lastWrite == null) {
+            return;
+        }
+
+        try {
+            lastWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the journal writer.");
+        } catch (ExecutionException e) {
+            throw new IOException("Journal writer failed.", e.getCause());
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Can't write model journal.", failure);
+        }
+    }
+
+    /**
+     * Encodes a value as a type tag followed by its payload.
+     *
+     * @param value The value to encode.
+     * @return The encoded bytes.
+     */
+    static byte[] encodeValue(Object value) {
+        if (value == null) {
+            return new byte[]{T_NULL};
+        } else if (value instanceof String) {
+            return tagged(T_STRING, ((String) value).getBytes(UTF8));
+        } else if (value instanceof Integer) {
+            return ByteBuffer.allocate(5).put(T_INTEGER).putInt((Integer) value).array();
+        } else if (value instanceof Long) {
+            return ByteBuffer.allocate(9).put(T_LONG).putLong((Long) value).array();
+        } else if (value instanceof Double) {
+            return ByteBuffer.allocate(9).put(T_DOUBLE).putDouble((Double) value).array();
+        } else if (value instanceof Float) {
+            return ByteBuffer.allocate(5).put(T_FLOAT).putFloat((Float) value).array();
+        } else if (value instanceof Boolean) {
+            return new byte[]{T_BOOLEAN, (byte) ((Boolean) value ? 1 : 0)};
+        } else if (value instanceof Short) {
+            return ByteBuffer.allocate(3).put(T_SHORT).putShort((Short) value).array();
+        } else if (value instanceof Byte) {
+            return new byte[]{T_BYTE, (Byte) value};
+        } else if (value instanceof Character) {
+            return ByteBuffer.allocate(3).put(T_CHARACTER).putChar((Character) value).array();
+        } else if (value instanceof Serializable) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            } catch (IOException | RuntimeException e) {
+                // i.e. a serializable collection holding an element that isn't.
+                return tagged(T_STRING, value.toString().getBytes(UTF8));
+            }
+            return tagged(T_SERIALIZED, bytes.toByteArray());
+        } else {
+            return tagged(T_STRING, value.toString().getBytes(UTF8));
+        }
+    }
+
+    /**
+     * Decodes a value previously encoded with {@link #encodeValue(Object)}.
+     *
+     * @param in The buffer positioned at the type tag.
+     * @return The decoded value.
+     * @throws IOException If the value can't be decoded.
+     */
+    static Object decodeValue(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return new String(readBytes(in), UTF8);
+            case T_INTEGER:
+                return in.getInt();
+            case T_LONG:
+                return in.getLong();
+            case T_DOUBLE:
+                return in.getDouble();
+            case T_FLOAT:
+                return in.getFloat();
+            case T_BOOLEAN:
+                return in.get() != 0;
+            case T_SHORT:
+                return in.getShort();
+            case T_BYTE:
+                return in.get();
+            case T_CHARACTER:
+                return in.getChar();
+            case T_SERIALIZED:
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Can't restore journal value.", e);
+                }
+            default:
+                throw new IOException("Unknown value type in journal: " + tag);
+        }
+    }
+
+    /**
+     * Reads a length prefixed byte array.
+     *
+     * @param in The buffer positioned at the length.
+     * @return The bytes.
+     * @throws IOException If the length is not valid.
+     */
+    static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid length in journal: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+
+        return bytes;
+    }
+
+    private static byte[] tagged(byte tag, byte[] payload) {
+        return ByteBuffer.allocate(1 + 4 + payload.length).put(tag).putInt(payload.length).put(payload).array();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.sf.mvc;
+
+import net.apkc.sf.utils.AsyncLogger;
+
+import java.awt.EventQueue;
+import java.beans.PropertyChangeEvent;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a journal written by {@link ModelJournal} through a controller.
+ *
+ * <p>
+ * Every record is turned back into a {@link PropertyChangeEvent} and handed to
+ * the controller on the Event Dispatch Thread, so the registered views receive
+ * the same stream of changes they received when the journal was recorded. The
+ * source of each event is the model registered in the controller at the same
+ * position as the recorded model, provided it is of the same class. Otherwise
+ * it is the first model of that class, or the class name itself if no such
+ * model is registered.
+ * </p>
+ *
+ * <p>
+ * The replay can run at the original speed, accelerated, or as fast as
+ * possible. The latter is useful for load testing and for warming up the JIT
+ * before the user starts interacting with the GUI.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public class ModelJournalReplayer {
+
+    /** Replays the journal at the speed it was recorded. */
+    public static final double ORIGINAL_SPEED = 1.0;
+    /** Replays the journal without any pause between records. */
+    public static final double MAX_SPEED = 0.0;
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(ModelJournalReplayer.class);
+    private final AbstractController controller;
+
+    /**
+     * Creates a new replayer.
+     *
+     * @param controller The controller that will receive the replayed changes.
+     */
+    public ModelJournalReplayer(AbstractController controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * Replays a journal file. This method blocks until the whole journal has
+     * been replayed or the calling thread is interrupted, so it should not be
+     * called from the Event Dispatch Thread unless the speed is
+     * {@link #MAX_SPEED}.
+     *
+     * <p>
+     * Any journal attached to the controller is detached while replaying, so
+     * the replayed changes are not recorded again. Neither are live changes
+     * received by the controller in the meantime.
+     * </p>
+     *
+     * @param file  The journal file.
+     * @param speed The speed factor. 1.0 replays at the original speed, 2.0 at
+     *              twice the speed and so on. A value of 0 or less replays
+     *              without any pause between records.
+     * @return The number of records replayed.
+     * @throws IOException If the journal can't be read or is corrupt.
+     */
+    public long replay(Path file, double speed) throws IOException {
+        ModelJournal journal = controller.getJournal();
+        controller.setJournal(null);
+        try {
+            return replayFile(file, speed);
+        } finally {
+            controller.setJournal(journal);
+        }
+    }
+
+    private long replayFile(Path file, double speed) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Model journal too large to replay: " + size + " bytes.");
+            }
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        if (in.remaining() < ModelJournal.HEADER_SIZE || in.getInt() != ModelJournal.MAGIC) {
+            throw new IOException("Not a model journal: " + file);
+        }
+        int version = in.getInt();
+        if (version != ModelJournal.VERSION) {
+            throw new IOException("Unsupported model journal version: " + version);
+        }
+        in.getLong(); // Wall clock time of the recording, not needed for replay.
+
+        LOG.info("Replaying model journal {} at speed {}.", file, speed > 0 ? speed : "MAX");
+
+        long startNanos = System.nanoTime();
+        long count = 0;
+        while (in.hasRemaining()) {
+            int position = in.position();
+            long offset;
+            int modelIndex;
+            String modelName;
+            String property;
+            Object oldValue;
+            Object newValue;
+            try {
+                offset = in.getLong();
+                modelIndex = in.getInt();
+                modelName = new String(ModelJournal.readBytes(in), ModelJournal.UTF8);
+                property = new String(ModelJournal.readBytes(in), ModelJournal.UTF8);
+                oldValue = ModelJournal.decodeValue(in);
+                newValue = ModelJournal.decodeValue(in);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated model journal, record " + count + " at byte " + position + ".", e);
+            } catch (IOException e) {
+                throw new IOException("Corrupt model journal, record " + count + " at byte " + position + ".", e);
+            }
+
+            if (speed > 0) {
+                long wait = startNanos + (long) (offset / speed) - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+
+            Object source = resolveSource(modelIndex, modelName);
+            if (!dispatch(new PropertyChangeEvent(source, property.isEmpty() ? null : property, oldValue, newValue))) {
+                break;
+            }
+            count++;
+        }
+
+        LOG.info("Replayed {} records in {}ms.", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+        return count;
+    }
+
+    private Object resolveSource(int modelIndex, String modelName) {
+        List<AbstractModel> models = controller.getRegisteredModels();
+        if (modelIndex >= 0 && modelIndex < models.size()) {
+            AbstractModel model = models.get(modelIndex);
+            if (model.getClass().getName().equals(modelName)) {
+                return model;
+            }
+        }
+
+        for (AbstractModel model : models) {
+            if (model.getClass().getName().equals(modelName)) {
+                return model;
+            }
+        }
+
+        return modelName;
+    }
+
+    /**
+     * Hands an event to the controller on the Event Dispatch Thread.
+     *
+     * @param evt The change event.
+     * @return FALSE if the calling thread was interrupted, TRUE otherwise.
+     */
+    private boolean dispatch(final PropertyChangeEvent evt) {
+        if (EventQueue.isDispatchThread()) {
+            controller.propertyChange(evt);
+            return true;
+        }
+
+        try {
+            EventQueue.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    controller.propertyChange(evt);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (InvocationTargetException e) {
+            LOG.warn("Error replaying change of property: {}", evt.getPropertyName(), e.getCause());
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.sf.tasks;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A cron-like schedule with five fields: minute, hour, day of month, month and
+ * day of week.
+ *
+ * <p>
+ * Every field accepts <code>*</code>, single values, ranges (<code>1-5</code>),
+ * lists (<code>1,15,30</code>) and steps (<code>*&#47;15</code> or
+ * <code>0-30/10</code>). Months go from 1 to 12 and days of week from 0 to 7,
+ * where both 0 and 7 are Sunday. As in cron, if both the day of month and the
+ * day of week are restricted, a day matches when either of them matches.
+ * </p>
+ *
+ * <p>
+ * Times are matched against the local time zone. When clocks go back and an
+ * hour is repeated, tasks whose hour field starts with <code>*</code> (i.e.
+ * every 15 minutes) run in both occurrences of that hour, while tasks with
+ * fixed hours run only in the first one, so a daily task never runs twice. When
+ * clocks go forward, runs whose local time falls in the skipped hour don't
+ * exist and are skipped that day, i.e. "30 2 * * *" doesn't run on the day
+ * clocks jump from 02:00 to 03:00.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public class CronExpression
+{
+
+    /** Max number of years to look ahead for a match. */
+    private static final int MAX_YEARS = 5;
+    /** One minute in milliseconds. */
+    private static final long MINUTE_MS = 60 * 1000;
+    /** How far back to look for a clock change when checking for repeated hours. */
+    private static final long TRANSITION_LOOKBACK_MS = 3 * 60 * MINUTE_MS;
+    /** The original expression. */
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean anyDayOfMonth;
+    private final boolean anyDayOfWeek;
+    /** TRUE if the task runs every hour, so it runs in both occurrences of a repeated hour. */
+    private final boolean everyHour;
+
+    /**
+     * Parses a cron expression.
+     *
+     * @param expression The expression, i.e. "*&#47;5 * * * 1-5".
+     *
+     * @throws IllegalArgumentException If the expression is not valid.
+     */
+    public CronExpression(String expression)
+    {
+        String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5)
+        {
+            throw new IllegalArgumentException("Cron expression must have 5 fields: " + expression);
+        }
+
+        this.expression = expression;
+        minutes = parseField(fields[0], 0, 59);
+        hours = parseField(fields[1], 0, 23);
+        daysOfMonth = parseField(fields[2], 1, 31);
+        months = parseField(fields[3], 1, 12);
+        daysOfWeek = parseField(fields[4], 0, 7);
+        if (daysOfWeek.get(7))
+        {
+            daysOfWeek.set(0);
+        }
+        anyDayOfMonth = fields[2].equals("*");
+        anyDayOfWeek = fields[4].equals("*");
+        everyHour = fields[1].startsWith("*");
+    }
+
+    /**
+     * Returns the next time matching this expression, strictly after the given time.
+     *
+     * @param after Time in milliseconds since the epoch.
+     *
+     * @return The next matching time in milliseconds since the epoch.
+     *
+     * @throws IllegalStateException If the expression never matches, i.e. "0 0 31 2 *".
+     */
+    public long nextAfter(long after)
+    {
+        // Within a day only move in real time. Setting the hour or minute fields would make the
+        // Calendar resolve the local time again, which is ambiguous while an hour is repeated.
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(after - ((after % MINUTE_MS) + MINUTE_MS) % MINUTE_MS + MINUTE_MS);
+
+        int limit = c.get(Calendar.YEAR) + MAX_YEARS;
+        while (c.get(Calendar.YEAR) <= limit)
+        {
+            if (!months.get(c.get(Calendar.MONTH) + 1))
+            {
+                c.add(Calendar.MONTH, 1);
+                c.set(Calendar.DAY_OF_MONTH, 1);
+                startOfDay(c);
+            }
+            else if (!matchesDay(c))
+            {
+                c.add(Calendar.DAY_OF_MONTH, 1);
+                startOfDay(c);
+            }
+            else if (!hours.get(c.get(Calendar.HOUR_OF_DAY)))
+            {
+                c.add(Calendar.MINUTE, 60 - c.get(Calendar.MINUTE));
+            }
+            else if (!minutes.get(c.get(Calendar.MINUTE)) || (!everyHour && isRepeated(c)))
+            {
+                c.add(Calendar.MINUTE, 1);
+            }
+            else
+            {
+                return c.getTimeInMillis();
+            }
+        }
+
+        throw new IllegalStateException("Cron expression never matches: " + expression);
+    }
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+
+    private static void startOfDay(Calendar c)
+    {
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+    }
+
+    /**
+     * Returns TRUE if the local time of the calendar already occurred earlier, because clocks
+     * went back in between.
+     */
+    private static boolean isRepeated(Calendar c)
+    {
+        TimeZone tz = c.getTimeZone();
+        long t = c.getTimeInMillis();
+        int offset = tz.getOffset(t);
+        int before = tz.getOffset(t - TRANSITION_LOOKBACK_MS);
+        if (before <= offset)
+        {
+            return false;
+        }
+
+        // The same local time occurred at t - (before - offset) if the change was after it.
+        return tz.getOffset(t - (before - offset)) == before;
+    }
+
+    private boolean matchesDay(Calendar c)
+    {
+        boolean dom = daysOfMonth.get(c.get(Calendar.DAY_OF_MONTH));
+        boolean dow = daysOfWeek.get(c.get(Calendar.DAY_OF_WEEK) - 1);
+        if (anyDayOfMonth || anyDayOfWeek)
+        {
+            return dom && dow;
+        }
+
+        return dom || dow;
+    }
+
+    private static BitSet parseField(String field, int min, int max)
+    {
+        BitSet bits = new BitSet(max + 1);
+        for (String part : field.split(","))
+        {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0)
+            {
+                step = parseValue(part.substring(slash + 1), 1, max);
+                part = part.substring(0, slash);
+            }
+
+            int from;
+            int to;
+            if (part.equals("*"))
+            {
+                from = min;
+                to = max;
+            }
+            else
+            {
+                int dash = part.indexOf('-');
+                if (dash >= 0)
+                {
+                    from = parseValue(part.substring(0, dash), min, max);
+                    to = parseValue(part.substring(dash + 1), min, max);
+                }
+                else
+                {
+                    from = parseValue(part, min, max);
+                    to = slash >= 0 ? max : from;
+                }
+            }
+
+            if (from > to)
+            {
+                throw new IllegalArgumentException("Invalid range in cron field: " + field);
+            }
+            for (int i = from; i <= to; i += step)
+            {
+                bits.set(i);
+            }
+        }
+
+        return bits;
+    }
+
+    private static int parseValue(String value, int min, int max)
+    {
+        int v;
+        try
+        {
+            v = Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid value in cron field: " + value, e);
+        }
+        if (v < min || v > max)
+        {
+            throw new IllegalArgumentException("Value out of range in cron field: " + value);
+        }
+
+        return v;
+    }
+}
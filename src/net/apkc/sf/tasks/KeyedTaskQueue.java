@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.sf.tasks;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+
+/**
+ * FIFO queue of the tasks submitted with the same key to the {@link TasksHandler}.
+ *
+ * <p>
+ * The queue executes its tasks one at a time in the finite task pool. After
+ * each task it goes back to the end of the pool's queue, so a busy key can't
+ * monopolize a thread. When it runs out of tasks the queue removes itself from
+ * the map of keys and retires, so idle keys don't hold any memory. A retired
+ * queue rejects new tasks and the submitter must create a new one.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+final class KeyedTaskQueue implements Runnable
+{
+
+    private final TasksHandler handler;
+    private final ConcurrentMap<Object, KeyedTaskQueue> queues;
+    private final Object key;
+    /** Pending tasks. Guarded by this. */
+    private final Queue<RunnableFuture<Boolean>> tasks = new ArrayDeque<>();
+    /** TRUE while this queue is submitted to the pool. Guarded by this. */
+    private boolean active;
+    /** TRUE once this queue was removed from the map. Guarded by this. */
+    private boolean retired;
+
+    KeyedTaskQueue(TasksHandler handler, ConcurrentMap<Object, KeyedTaskQueue> queues, Object key)
+    {
+        this.handler = handler;
+        this.queues = queues;
+        this.key = key;
+    }
+
+    /**
+     * Adds a task to this queue.
+     *
+     * @param task The task.
+     *
+     * @return FALSE if this queue is retired and can't accept tasks, TRUE otherwise.
+     */
+    boolean offer(RunnableFuture<Boolean> task)
+    {
+        synchronized (this)
+        {
+            if (retired)
+            {
+                return false;
+            }
+            tasks.add(task);
+            if (active)
+            {
+                return true;
+            }
+            active = true;
+        }
+        submit();
+
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        RunnableFuture<Boolean> task;
+        synchronized (this)
+        {
+            task = tasks.poll();
+        }
+        if (task != null)
+        {
+            task.run();
+        }
+
+        synchronized (this)
+        {
+            if (tasks.isEmpty())
+            {
+                active = false;
+                retired = true;
+                queues.remove(key, this);
+                return;
+            }
+        }
+        submit();
+    }
+
+    private void submit()
+    {
+        try
+        {
+            handler.submitFiniteTask(this);
+        }
+        catch (RejectedExecutionException e)
+        {
+            RunnableFuture<Boolean> task;
+            synchronized (this)
+            {
+                active = false;
+                retired = true;
+                queues.remove(key, this);
+                task = tasks.poll();
+                while (task != null)
+                {
+                    task.cancel(false);
+                    task = tasks.poll();
+                }
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.sf.tasks;
+
+import net.apkc.sf.utils.AsyncLogger;
+
+import java.awt.*;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handle of a task scheduled through the {@link TasksHandler}.
+ *
+ * <p>
+ * The timer thread only decides when a task must run, the task itself is
+ * executed in the finite task pool. Periodic tasks never overlap and never
+ * burst: if a run is due while the previous one is still executing, or if
+ * several runs were missed, they are coalesced into the next one and counted
+ * as skipped. Fixed rate tasks are always aligned to their first run, so they
+ * don't drift over time.
+ * </p>
+ *
+ * <p>
+ * A periodic task can be bound to a GUI component, in which case its runs are
+ * skipped while the component is not showing on screen. The visibility of the
+ * component is tracked on the Event Dispatch Thread with a
+ * {@link HierarchyListener}, and runs are skipped until the listener has been
+ * installed and the component is showing.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public class ScheduledTask
+{
+
+    /** This class' logger. */
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(ScheduledTask.class);
+
+    /** Types of schedule. */
+    enum Mode
+    {
+        ONCE, FIXED_RATE, FIXED_DELAY, CRON
+    }
+
+    private final TasksHandler handler;
+    private final ScheduledExecutorService timer;
+    private final Runnable task;
+    private final Mode mode;
+    /** Period in nanoseconds for fixed rate and fixed delay tasks. */
+    private final long period;
+    private final CronExpression cron;
+    private final Component view;
+    /** TRUE while the task is executing in the pool. */
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong skipped = new AtomicLong();
+    private final Runnable fire = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            fire();
+        }
+    };
+    private final Runnable execute = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                LOG.error("Scheduled task failed: {}", task.getClass().getName(), e);
+            }
+            finally
+            {
+                running.set(false);
+                if (mode == Mode.FIXED_DELAY)
+                {
+                    scheduleNext();
+                }
+            }
+        }
+    };
+    /** Tracks whether the view is showing. Only accessed from the Event Dispatch Thread. */
+    private final HierarchyListener visibility = new HierarchyListener()
+    {
+        @Override
+        public void hierarchyChanged(HierarchyEvent e)
+        {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0)
+            {
+                viewShowing = view.isShowing();
+            }
+        }
+    };
+    /** TRUE if a one-shot run became due while paused and must run on resume. */
+    private final AtomicBoolean held = new AtomicBoolean();
+    /** Next run in nanoseconds, only for fixed rate tasks. Only accessed from the timer thread. */
+    private long nextRun;
+    /** Last scheduled run in milliseconds since the epoch, only for cron tasks. */
+    private long lastScheduled;
+    private volatile boolean viewShowing;
+    private volatile ScheduledFuture<?> pending;
+    private volatile boolean paused;
+    private volatile boolean cancelled;
+
+    ScheduledTask(TasksHandler handler, ScheduledExecutorService timer, Runnable task, Mode mode, long period, CronExpression cron, Component view)
+    {
+        this.handler = handler;
+        this.timer = timer;
+        this.task = task;
+        this.mode = mode;
+        this.period = period;
+        this.cron = cron;
+        this.view = view;
+    }
+
+    /**
+     * Starts the schedule.
+     *
+     * @param initialDelay Delay in nanoseconds of the first run. Ignored for cron tasks.
+     *
+     * @return This instance.
+     */
+    ScheduledTask start(long initialDelay)
+    {
+        if (view != null)
+        {
+            EventQueue.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (!cancelled)
+                    {
+                        view.addHierarchyListener(visibility);
+                        viewShowing = view.isShowing();
+                    }
+                }
+            });
+        }
+
+        if (mode == Mode.CRON)
+        {
+            scheduleNext();
+        }
+        else
+        {
+            nextRun = System.nanoTime() + initialDelay;
+            pending = timer.schedule(fire, initialDelay, TimeUnit.NANOSECONDS);
+        }
+
+        return this;
+    }
+
+    /**
+     * Cancels this task. A run already executing is not interrupted.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        ScheduledFuture<?> f = pending;
+        if (f != null)
+        {
+            f.cancel(false);
+        }
+
+        if (view != null)
+        {
+            EventQueue.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    view.removeHierarchyListener(visibility);
+                }
+            });
+        }
+    }
+
+    /**
+     * Pauses this task. While paused all runs of a periodic task are skipped, but the schedule
+     * is kept. A one-shot task that becomes due while paused is held and runs on
+     * {@link #resume()}.
+     */
+    public void pause()
+    {
+        paused = true;
+    }
+
+    /**
+     * Resumes this task after a call to {@link #pause()}.
+     */
+    public void resume()
+    {
+        paused = false;
+        if (held.compareAndSet(true, false))
+        {
+            try
+            {
+                timer.execute(fire);
+            }
+            catch (RejectedExecutionException e)
+            {
+                LOG.warn("Scheduled task rejected by the timer: {}", task.getClass().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns TRUE if this task was cancelled.
+     *
+     * @return TRUE if cancelled, FALSE otherwise.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Returns TRUE if this task is paused.
+     *
+     * @return TRUE if paused, FALSE otherwise.
+     */
+    public boolean isPaused()
+    {
+        return paused;
+    }
+
+    /**
+     * Returns the number of runs skipped so far, because the task was paused, its view was
+     * hidden, the previous run had not finished or the run was missed.
+     *
+     * @return The number of skipped runs.
+     */
+    public long getSkippedRuns()
+    {
+        return skipped.get();
+    }
+
+    /**
+     * Called from the timer thread when a run is due.
+     */
+    private void fire()
+    {
+        if (cancelled)
+        {
+            return;
+        }
+
+        if (mode == Mode.ONCE)
+        {
+            if (paused)
+            {
+                held.set(true);
+                // Resumed meanwhile? Then whoever clears the flag runs the task.
+                if (paused || !held.compareAndSet(true, false))
+                {
+                    return;
+                }
+            }
+            submit();
+            return;
+        }
+
+        boolean submitted = false;
+        if (!paused && (view == null || viewShowing) && running.compareAndSet(false, true))
+        {
+            submitted = submit();
+        }
+        else
+        {
+            skipped.incrementAndGet();
+        }
+
+        if (mode == Mode.FIXED_DELAY && submitted)
+        {
+            return; // Fixed delay tasks are re-scheduled when the run finishes.
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Submits a run to the pool. For periodic tasks the running flag must be set by the caller.
+     *
+     * @return TRUE if the run was submitted, FALSE otherwise.
+     */
+    private boolean submit()
+    {
+        try
+        {
+            handler.submitFiniteTask(execute);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            running.set(false);
+            LOG.warn("Scheduled task rejected by the pool: {}", task.getClass().getName(), e);
+            return false;
+        }
+    }
+
+    private void scheduleNext()
+    {
+        if (cancelled)
+        {
+            return;
+        }
+
+        long delay;
+        switch (mode)
+        {
+            case FIXED_RATE:
+                long now = System.nanoTime();
+                nextRun += period;
+                if (nextRun - now <= 0)
+                {
+                    // Coalesce all missed runs into the next aligned one.
+                    long missed = (now - nextRun) / period + 1;
+                    nextRun += missed * period;
+                    skipped.addAndGet(missed);
+                }
+                delay = nextRun - now;
+                break;
+            case FIXED_DELAY:
+                delay = period;
+                break;
+            case CRON:
+                // The timer may fire slightly before the wall clock reaches the scheduled
+                // minute, so never compute the next run from before the last one.
+                long millis = System.currentTimeMillis();
+                lastScheduled = cron.nextAfter(Math.max(millis, lastScheduled));
+                delay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lastScheduled - millis));
+                break;
+            default:
+                return;
+        }
+
+        try
+        {
+            pending = timer.schedule(fire, delay, TimeUnit.NANOSECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            LOG.warn("Scheduled task rejected by the timer: {}", task.getClass().getName(), e);
+        }
+    }
+}
@@ -25,11 +25,18 @@
  */
 package net.apkc.sf.tasks;
 
-import org.apache.log4j.Logger;
+import net.apkc.sf.utils.AsyncLogger;
 
+import java.awt.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class to handle all tasks in Emma.
@@ -42,11 +49,25 @@ public class TasksHandler
 {
 
     /** This class' logger. */
-    private static final Logger LOG = Logger.getLogger(TasksHandler.class.getName());
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(TasksHandler.class);
     /** This instance. */
     private static final TasksHandler _INSTANCE = new TasksHandler();
     /** The fixed thread pool. */
     private ExecutorService pool = Executors.newFixedThreadPool(10);
+    /** Queues of keyed tasks. Only keys with pending tasks are kept. */
+    private final ConcurrentMap<Object, KeyedTaskQueue> keyedQueues = new ConcurrentHashMap<>();
+    /** The timer for scheduled tasks. Only decides when tasks run, they are executed in the pool. */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "SF-TasksHandler-Timer");
+            t.setDaemon(true);
+
+            return t;
+        }
+    });
 
     /**
      * Private constructor.
@@ -76,7 +97,7 @@ public class TasksHandler
     public TasksHandler configure(int poolSize)
     {
         pool = Executors.newFixedThreadPool(poolSize);
-        LOG.info("Re-initiating finite task pool with " + poolSize + " slots.");
+        LOG.info("Re-initiating finite task pool with {} slots.", poolSize);
 
         return this;
     }
@@ -104,4 +125,156 @@ public class TasksHandler
     {
         return pool.submit(task, true);
     }
+
+    /**
+     * Submits a finite task to be executed in the fixed thread pool, after all tasks previously
+     * submitted with the same key. Tasks with different keys run in parallel. Useful for ordering
+     * all tasks that touch the same entity, i.e. the same model, without locks.
+     *
+     * @param key  The key of the task. Must implement equals() and hashCode().
+     * @param task The task to be executed.
+     *
+     * @return A future object, which can be used to monitor the task.
+     */
+    public Future<Boolean> submitKeyedTask(Object key, Runnable task)
+    {
+        FutureTask<Boolean> future = new FutureTask<>(task, true);
+        while (true)
+        {
+            KeyedTaskQueue queue = keyedQueues.get(key);
+            if (queue == null)
+            {
+                KeyedTaskQueue created = new KeyedTaskQueue(this, keyedQueues, key);
+                queue = keyedQueues.putIfAbsent(key, created);
+                if (queue == null)
+                {
+                    queue = created;
+                }
+            }
+            if (queue.offer(future))
+            {
+                return future;
+            }
+            // The queue retired after running out of tasks, try again with a new one.
+        }
+    }
+
+    /**
+     * Submits a finite task to be executed once in the fixed thread pool after a delay.
+     *
+     * @param task  The task to be executed.
+     * @param delay The delay.
+     * @param unit  The unit of the delay.
+     *
+     * @return The handle of the scheduled task.
+     */
+    public ScheduledTask scheduleTask(Runnable task, long delay, TimeUnit unit)
+    {
+        return new ScheduledTask(this, timer, task, ScheduledTask.Mode.ONCE, 0, null, null).start(unit.toNanos(delay));
+    }
+
+    /**
+     * Submits a finite task to be executed periodically at a fixed rate. Runs are aligned to the
+     * first one, so they don't drift. Runs that are missed, or that are due while the previous
+     * one is still executing, are skipped instead of executed in a burst.
+     *
+     * @param task         The task to be executed.
+     * @param initialDelay The delay of the first run.
+     * @param period       The period between runs.
+     * @param unit         The unit of the delay and the period.
+     *
+     * @return The handle of the scheduled task.
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit)
+    {
+        return scheduleAtFixedRate(task, initialDelay, period, unit, null);
+    }
+
+    /**
+     * Same as {@link #scheduleAtFixedRate(Runnable, long, long, TimeUnit)}, but runs are skipped
+     * while the given view is not showing on screen.
+     *
+     * @param task         The task to be executed.
+     * @param initialDelay The delay of the first run.
+     * @param period       The period between runs.
+     * @param unit         The unit of the delay and the period.
+     * @param view         The view the task refreshes, or NULL.
+     *
+     * @return The handle of the scheduled task.
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit, Component view)
+    {
+        checkPeriod(period);
+        return new ScheduledTask(this, timer, task, ScheduledTask.Mode.FIXED_RATE, unit.toNanos(period), null, view).start(unit.toNanos(initialDelay));
+    }
+
+    /**
+     * Submits a finite task to be executed periodically, waiting a fixed delay between the end
+     * of one run and the start of the next.
+     *
+     * @param task         The task to be executed.
+     * @param initialDelay The delay of the first run.
+     * @param delay        The delay between runs.
+     * @param unit         The unit of the delays.
+     *
+     * @return The handle of the scheduled task.
+     */
+    public ScheduledTask scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit)
+    {
+        return scheduleWithFixedDelay(task, initialDelay, delay, unit, null);
+    }
+
+    /**
+     * Same as {@link #scheduleWithFixedDelay(Runnable, long, long, TimeUnit)}, but runs are
+     * skipped while the given view is not showing on screen.
+     *
+     * @param task         The task to be executed.
+     * @param initialDelay The delay of the first run.
+     * @param delay        The delay between runs.
+     * @param unit         The unit of the delays.
+     * @param view         The view the task refreshes, or NULL.
+     *
+     * @return The handle of the scheduled task.
+     */
+    public ScheduledTask scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit, Component view)
+    {
+        checkPeriod(delay);
+        return new ScheduledTask(this, timer, task, ScheduledTask.Mode.FIXED_DELAY, unit.toNanos(delay), null, view).start(unit.toNanos(initialDelay));
+    }
+
+    /**
+     * Submits a finite task to be executed every time the given cron expression matches.
+     *
+     * @param task       The task to be executed.
+     * @param expression The cron expression. See {@link CronExpression}.
+     *
+     * @return The handle of the scheduled task.
+     */
+    public ScheduledTask scheduleCron(Runnable task, String expression)
+    {
+        return scheduleCron(task, expression, null);
+    }
+
+    /**
+     * Same as {@link #scheduleCron(Runnable, String)}, but runs are skipped while the given view
+     * is not showing on screen.
+     *
+     * @param task       The task to be executed.
+     * @param expression The cron expression. See {@link CronExpression}.
+     * @param view       The view the task refreshes, or NULL.
+     *
+     * @return The handle of the scheduled task.
+     */
+    public ScheduledTask scheduleCron(Runnable task, String expression, Component view)
+    {
+        return new ScheduledTask(this, timer, task, ScheduledTask.Mode.CRON, 0, new CronExpression(expression), view).start(0);
+    }
+
+    private static void checkPeriod(long period)
+    {
+        if (period <= 0)
+        {
+            throw new IllegalArgumentException("Period must be greater than 0: " + period);
+        }
+    }
 }
@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2014, Andreas P. Koenzen <akc at apkc.net>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.apkc.sf.utils;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking logger used inside the framework.
+ *
+ * <p>
+ * Messages are not written by the calling thread. The level is checked
+ * against the underlying Log4j logger and, if enabled, the message pattern and
+ * its arguments are put in a bounded queue which is drained by a single
+ * background thread. The message is only built on that thread by replacing
+ * every <code>{}</code> in the pattern with the next argument. If the queue is
+ * full the message is dropped and counted, so a slow appender can never stall
+ * the Event Dispatch Thread or the task pool threads. The time of the call and
+ * the name of the calling thread are captured when the message is queued, so
+ * they are logged correctly however long the message waits in the queue.
+ * </p>
+ *
+ * <p>
+ * Since arguments are only converted to strings later on the background
+ * thread, callers must pass immutable values (strings, numbers, class names,
+ * etc.) and never Swing components, models or other objects that may change
+ * or that are not safe to access outside their own thread.
+ * </p>
+ *
+ * <p>
+ * Repeated warnings and errors are rate-limited: after a message is logged,
+ * further messages with the same pattern, the same first argument and the same
+ * type of exception are suppressed for {@link #REPEAT_INTERVAL_MS} milliseconds
+ * and the number of suppressed messages is reported with the next one. So the
+ * same failure repeated in a loop is logged once, while different failures
+ * sharing a pattern (i.e. in two different models) are all logged. For this
+ * reason patterns should always be constants.
+ * </p>
+ *
+ * @author Andreas P. Koenzen <akc at apkc.net>
+ * @version 0.1
+ */
+public class AsyncLogger
+{
+
+    /** Size of the message queue. */
+    public static final int QUEUE_SIZE = 8192;
+    /** Interval in milliseconds during which repeated warnings are suppressed. */
+    public static final long REPEAT_INTERVAL_MS = 10000;
+    /** Max number of repeated messages tracked for rate-limiting, per logger. */
+    private static final int MAX_TRACKED_KEYS = 1024;
+    /** The message queue. */
+    private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    /** Fully qualified name of this class, for Log4j. */
+    private static final String FQCN = AsyncLogger.class.getName();
+    /** Number of messages dropped because the queue was full. */
+    private static final AtomicLong DROPPED = new AtomicLong();
+    /** Number of dropped messages already reported in the log. */
+    private static final AtomicLong REPORTED_DROPPED = new AtomicLong();
+    /** The wrapped logger. */
+    private final Logger logger;
+    /** Rate-limiting windows by repeated message. */
+    private final ConcurrentMap<Key, Window> windows = new ConcurrentHashMap<>();
+
+    static
+    {
+        final Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        Entry e = QUEUE.take();
+                        try
+                        {
+                            write(e);
+                        }
+                        catch (RuntimeException ex)
+                        {
+                            // Never let a bad entry kill the writer thread.
+                        }
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "SF-AsyncLogger");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Entry e;
+                while ((e = QUEUE.poll()) != null)
+                {
+                    try
+                    {
+                        write(e);
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        // Skip the bad entry and keep draining.
+                    }
+                }
+            }
+        }, "SF-AsyncLogger-Drain"));
+    }
+
+    /**
+     * Private constructor.
+     */
+    private AsyncLogger(Logger logger)
+    {
+        this.logger = logger;
+    }
+
+    /**
+     * Returns a logger for the given class.
+     *
+     * @param clazz The class.
+     *
+     * @return A new logger.
+     */
+    public static AsyncLogger getLogger(Class<?> clazz)
+    {
+        return new AsyncLogger(Logger.getLogger(clazz.getName()));
+    }
+
+    /**
+     * Returns the number of messages dropped so far because the queue was full.
+     *
+     * @return The number of dropped messages.
+     */
+    public static long getDroppedCount()
+    {
+        return DROPPED.get();
+    }
+
+    /**
+     * Logs a message with level DEBUG.
+     *
+     * @param pattern The message pattern.
+     */
+    public void debug(String pattern)
+    {
+        log(Level.DEBUG, pattern, 0, null, null, null, false);
+    }
+
+    /**
+     * Logs a message with level DEBUG.
+     *
+     * @param pattern The message pattern.
+     * @param arg     The argument for the pattern.
+     */
+    public void debug(String pattern, Object arg)
+    {
+        log(Level.DEBUG, pattern, 1, arg, null, null, false);
+    }
+
+    /**
+     * Logs a message with level DEBUG.
+     *
+     * @param pattern The message pattern.
+     * @param arg1    The first argument for the pattern.
+     * @param arg2    The second argument for the pattern.
+     */
+    public void debug(String pattern, Object arg1, Object arg2)
+    {
+        log(Level.DEBUG, pattern, 2, arg1, arg2, null, false);
+    }
+
+    /**
+     * Logs a message with level INFO.
+     *
+     * @param pattern The message pattern.
+     */
+    public void info(String pattern)
+    {
+        log(Level.INFO, pattern, 0, null, null, null, false);
+    }
+
+    /**
+     * Logs a message with level INFO.
+     *
+     * @param pattern The message pattern.
+     * @param arg     The argument for the pattern.
+     */
+    public void info(String pattern, Object arg)
+    {
+        log(Level.INFO, pattern, 1, arg, null, null, false);
+    }
+
+    /**
+     * Logs a message with level INFO.
+     *
+     * @param pattern The message pattern.
+     * @param arg1    The first argument for the pattern.
+     * @param arg2    The second argument for the pattern.
+     */
+    public void info(String pattern, Object arg1, Object arg2)
+    {
+        log(Level.INFO, pattern, 2, arg1, arg2, null, false);
+    }
+
+    /**
+     * Logs a message with level WARN.
+     *
+     * @param pattern The message pattern.
+     */
+    public void warn(String pattern)
+    {
+        log(Level.WARN, pattern, 0, null, null, null, true);
+    }
+
+    /**
+     * Logs a message with level WARN.
+     *
+     * @param pattern The message pattern.
+     * @param arg     The argument for the pattern.
+     */
+    public void warn(String pattern, Object arg)
+    {
+        log(Level.WARN, pattern, 1, arg, null, null, true);
+    }
+
+    /**
+     * Logs a message with level WARN.
+     *
+     * @param pattern The message pattern.
+     * @param t       The exception to log.
+     */
+    public void warn(String pattern, Throwable t)
+    {
+        log(Level.WARN, pattern, 0, null, null, t, true);
+    }
+
+    /**
+     * Logs a message with level WARN.
+     *
+     * @param pattern The message pattern.
+     * @param arg     The argument for the pattern.
+     * @param t       The exception to log.
+     */
+    public void warn(String pattern, Object arg, Throwable t)
+    {
+        log(Level.WARN, pattern, 1, arg, null, t, true);
+    }
+
+    /**
+     * Logs a message with level ERROR.
+     *
+     * @param pattern The message pattern.
+     */
+    public void error(String pattern)
+    {
+        log(Level.ERROR, pattern, 0, null, null, null, true);
+    }
+
+    /**
+     * Logs a message with level ERROR.
+     *
+     * @param pattern The message pattern.
+     * @param arg     The argument for the pattern.
+     */
+    public void error(String pattern, Object arg)
+    {
+        log(Level.ERROR, pattern, 1, arg, null, null, true);
+    }
+
+    /**
+     * Logs a message with level ERROR.
+     *
+     * @param pattern The message pattern.
+     * @param t       The exception to log.
+     */
+    public void error(String pattern, Throwable t)
+    {
+        log(Level.ERROR, pattern, 0, null, null, t, true);
+    }
+
+    /**
+     * Logs a message with level ERROR.
+     *
+     * @param pattern The message pattern.
+     * @param arg     The argument for the pattern.
+     * @param t       The exception to log.
+     */
+    public void error(String pattern, Object arg, Throwable t)
+    {
+        log(Level.ERROR, pattern, 1, arg, null, t, true);
+    }
+
+    private void log(Level level, String pattern, int argCount, Object arg1, Object arg2, Throwable t, boolean rateLimited)
+    {
+        if (!logger.isEnabledFor(level))
+        {
+            return;
+        }
+
+        int suppressed = 0;
+        if (rateLimited)
+        {
+            suppressed = acquire(pattern, arg1, t);
+            if (suppressed < 0)
+            {
+                return;
+            }
+        }
+
+        if (!QUEUE.offer(new Entry(logger, level, System.currentTimeMillis(), Thread.currentThread().getName(), pattern, argCount, arg1, arg2, t, suppressed)))
+        {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    /**
+     * Checks the rate-limiting window of a message.
+     *
+     * @param pattern The message pattern.
+     * @param arg     The first argument of the message.
+     * @param t       The exception of the message.
+     *
+     * @return -1 if the message must be suppressed, otherwise the number of messages suppressed
+     *         since the last one was logged.
+     */
+    private int acquire(String pattern, Object arg, Throwable t)
+    {
+        long now = System.nanoTime();
+        Key key = new Key(pattern, arg, t == null ? null : t.getClass());
+        Window w;
+        try
+        {
+            w = windows.get(key);
+        }
+        catch (RuntimeException ex)
+        {
+            return 0; // The argument's hashCode() or equals() failed, don't rate-limit.
+        }
+        if (w == null)
+        {
+            if (windows.size() >= MAX_TRACKED_KEYS)
+            {
+                windows.clear();
+            }
+            w = windows.putIfAbsent(key, new Window(now));
+
+            return w == null ? 0 : acquire(w, now);
+        }
+
+        return acquire(w, now);
+    }
+
+    private int acquire(Window w, long now)
+    {
+        long start = w.start.get();
+        if (now - start < TimeUnit.MILLISECONDS.toNanos(REPEAT_INTERVAL_MS) || !w.start.compareAndSet(start, now))
+        {
+            w.suppressed.incrementAndGet();
+            return -1;
+        }
+
+        return w.suppressed.getAndSet(0);
+    }
+
+    /**
+     * Builds and writes a message. Only called from the writer thread or the shutdown hook.
+     */
+    private static void write(Entry e)
+    {
+        try
+        {
+            String pattern = String.valueOf(e.pattern);
+            StringBuilder msg = new StringBuilder(pattern.length() + 32);
+            int next = 0;
+            int from = 0;
+            int idx;
+            while (next < e.argCount && (idx = pattern.indexOf("{}", from)) >= 0)
+            {
+                msg.append(pattern, from, idx).append(format(next++ == 0 ? e.arg1 : e.arg2));
+                from = idx + 2;
+            }
+            msg.append(pattern, from, pattern.length());
+
+            if (e.suppressed > 0)
+            {
+                msg.append(" (").append(e.suppressed).append(" similar messages suppressed)");
+            }
+
+            long dropped = DROPPED.get();
+            long reported = REPORTED_DROPPED.getAndSet(dropped);
+            if (dropped > reported)
+            {
+                e.logger.warn((dropped - reported) + " log messages dropped because the queue was full.");
+            }
+
+            e.logger.callAppenders(new LoggingEvent(
+                    FQCN,
+                    e.logger,
+                    e.timestamp,
+                    e.level,
+                    msg.toString(),
+                    e.threadName,
+                    e.t == null ? null : new ThrowableInformation(e.t),
+                    null,
+                    null,
+                    null));
+        }
+        catch (RuntimeException ex)
+        {
+            // Never let a broken argument or appender kill the writer thread.
+        }
+    }
+
+    /**
+     * Converts an argument to a string, never failing.
+     *
+     * @param arg The argument.
+     *
+     * @return The string representation of the argument.
+     */
+    private static String format(Object arg)
+    {
+        try
+        {
+            return String.valueOf(arg);
+        }
+        catch (RuntimeException ex)
+        {
+            return "[" + arg.getClass().getName() + ".toString() failed: " + ex + "]";
+        }
+    }
+
+    /**
+     * A queued log message.
+     */
+    private static final class Entry
+    {
+
+        final Logger logger;
+        final Level level;
+        final long timestamp;
+        final String threadName;
+        final String pattern;
+        final int argCount;
+        final Object arg1;
+        final Object arg2;
+        final Throwable t;
+        final int suppressed;
+
+        Entry(Logger logger, Level level, long timestamp, String threadName, String pattern, int argCount, Object arg1, Object arg2, Throwable t, int suppressed)
+        {
+            this.logger = logger;
+            this.level = level;
+            this.timestamp = timestamp;
+            this.threadName = threadName;
+            this.pattern = pattern;
+            this.argCount = argCount;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.t = t;
+            this.suppressed = suppressed;
+        }
+    }
+
+    /**
+     * Identifies a repeated message: its pattern, first argument and type of exception.
+     */
+    private static final class Key
+    {
+
+        final String pattern;
+        final Object arg;
+        final Class<?> error;
+
+        Key(String pattern, Object arg, Class<?> error)
+        {
+            this.pattern = pattern;
+            this.arg = arg;
+            this.error = error;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            Key k = (Key) o;
+
+            return Objects.equals(pattern, k.pattern) && Objects.equals(arg, k.arg) && error == k.error;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(pattern, arg, error);
+        }
+    }
+
+    /**
+     * Rate-limiting window of a repeated message.
+     */
+    private static final class Window
+    {
+
+        final AtomicLong start;
+        final AtomicInteger suppressed = new AtomicInteger();
+
+        Window(long start)
+        {
+            this.start = new AtomicLong(start);
+        }
+    }
+}
@@ -25,8 +25,6 @@
  */
 package net.apkc.sf.utils;
 
-import org.apache.log4j.Logger;
-
 import java.awt.*;
 import java.io.IOException;
 import java.io.InputStream;
@@ -41,7 +39,7 @@ public class Fonts
 {
 
     /** This class' logger. */
-    private static final Logger LOG = Logger.getLogger(Fonts.class.getName());
+    private static final AsyncLogger LOG = AsyncLogger.getLogger(Fonts.class);
     /** This instance. */
     private static final Fonts _INSTANCE = new Fonts();
     /** Default font size. */
@@ -66,15 +64,15 @@ public class Fonts
             defaultFontPlain = Font.createFont(Font.TRUETYPE_FONT, s1);
             defaultFontBold = Font.createFont(Font.TRUETYPE_FONT, s2);
 
-            LOG.info("Initiating default font \"Roboto\" with size " + size + "px.");
+            LOG.info("Initiating default font \"Roboto\" with size {}px.", size);
         }
         catch (FontFormatException | IOException e)
         {
-            LOG.error("Can't access application's fonts. Error: " + e.toString(), e);
+            LOG.error("Can't access application's fonts. Error: {}", e, e);
             defaultFontPlain = new Font("Dialog", Font.TRUETYPE_FONT, size);
             defaultFontBold = new Font("Dialog", Font.BOLD, size);
 
-            LOG.info("Initiating backup font \"Dialog\" with size " + size + "px.");
+            LOG.info("Initiating backup font \"Dialog\" with size {}px.", size);
         }
         finally
         {
@@ -91,7 +89,7 @@ public class Fonts
             }
             catch (IOException ex)
             {
-                LOG.error("Can't close stream. Error: " + ex.toString(), ex);
+                LOG.error("Can't close stream. Error: {}", ex, ex);
             }
         }
     }
@@ -116,7 +114,7 @@ public class Fonts
     public Fonts configure(int defaultFontSize)
     {
         size = defaultFontSize;
-        LOG.info("Re-initiating default font with size " + defaultFontSize + "px.");
+        LOG.info("Re-initiating default font with size {}px.", defaultFontSize);
 
         return this;
     }